@@ -0,0 +1,74 @@
+package net.nbug.hexprobe.server.telnet;
+
+/**
+ * ArgumentParser
+ *
+ * @author hexprobe <hexprobe@nbug.net>
+ *
+ * @license
+ * This code is hereby placed in the public domain.
+ *
+ */
+public class ArgumentParser {
+    private final String argument;
+    private int pos = 0;
+
+    public ArgumentParser(String argument) {
+        this.argument = argument;
+    }
+
+    public String nextString() {
+        skipSpaces();
+        int begin = pos;
+        while (pos < argument.length() && !Character.isWhitespace(argument.charAt(pos))) {
+            pos++;
+        }
+        if (begin == pos) {
+            throw new IllegalArgumentException("Too few arguments");
+        }
+        return argument.substring(begin, pos);
+    }
+
+    public int nextInt() {
+        return Integer.parseInt(nextString());
+    }
+
+    public long nextLong() {
+        return Long.parseLong(nextString());
+    }
+
+    public double nextDouble() {
+        return Double.parseDouble(nextString());
+    }
+
+    public boolean nextBoolean() {
+        String token = nextString();
+        if (token.equalsIgnoreCase("true")) {
+            return true;
+        } else if (token.equalsIgnoreCase("false")) {
+            return false;
+        } else {
+            throw new IllegalArgumentException(token);
+        }
+    }
+
+    public String rest() {
+        skipSpaces();
+        String s = argument.substring(pos).trim();
+        pos = argument.length();
+        return s;
+    }
+
+    public void end() {
+        skipSpaces();
+        if (pos < argument.length()) {
+            throw new IllegalArgumentException("Too many arguments");
+        }
+    }
+
+    private void skipSpaces() {
+        while (pos < argument.length() && Character.isWhitespace(argument.charAt(pos))) {
+            pos++;
+        }
+    }
+}
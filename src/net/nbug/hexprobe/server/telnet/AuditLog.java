@@ -0,0 +1,316 @@
+package net.nbug.hexprobe.server.telnet;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * AuditLog
+ *
+ * Appends one tab separated line per executed command to a rotating file.
+ * Producers only enqueue records; a single writer thread drains the queue
+ * and writes each batch with one FileChannel write (and one fsync, if enabled).
+ *
+ * @author hexprobe <hexprobe@nbug.net>
+ *
+ * @license
+ * This code is hereby placed in the public domain.
+ *
+ */
+public class AuditLog {
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private static final long IDLE_WAIT = TimeUnit.MILLISECONDS.toNanos(100);
+    private static final long FULL_WAIT = TimeUnit.MICROSECONDS.toNanos(100);
+    private static final long RETRY_WAIT = TimeUnit.SECONDS.toNanos(1);
+
+    public enum Durability {
+        /** Leave flushing to the OS. */
+        NONE,
+        /** fsync once after every batch written. */
+        BATCH
+    }
+
+    public enum OverflowPolicy {
+        /** Discard records while the queue is full. */
+        DROP,
+        /** Make the producer wait until the writer catches up. */
+        BLOCK
+    }
+
+    private final File file;
+    private final Queue<Record> queue = new ConcurrentLinkedQueue<Record>();
+    private final AtomicInteger queued = new AtomicInteger();
+    private final AtomicLong dropped = new AtomicLong();
+
+    private Durability durability = Durability.BATCH;
+    private OverflowPolicy overflowPolicy = OverflowPolicy.DROP;
+    private int queueCapacity = 8192;
+    private long maxFileSize = 64L * 1024 * 1024;
+    private int maxFiles = 10;
+
+    private volatile Writer writer = null;
+
+    public AuditLog(File file) {
+        this.file = file;
+    }
+
+    public void setDurability(Durability durability) {
+        this.durability = durability;
+    }
+
+    public void setOverflowPolicy(OverflowPolicy overflowPolicy) {
+        this.overflowPolicy = overflowPolicy;
+    }
+
+    public void setQueueCapacity(int queueCapacity) {
+        this.queueCapacity = queueCapacity;
+    }
+
+    /**
+     * The file is rotated to file.1, file.2, ... once it grows beyond this size.
+     */
+    public void setMaxFileSize(long maxFileSize) {
+        this.maxFileSize = maxFileSize;
+    }
+
+    /**
+     * Number of rotated files to keep.
+     */
+    public void setMaxFiles(int maxFiles) {
+        this.maxFiles = maxFiles;
+    }
+
+    public long getDroppedCount() {
+        return dropped.get();
+    }
+
+    public synchronized void start() throws IOException {
+        if (writer == null) {
+            Writer w = new Writer();
+            w.open();
+            w.start();
+            writer = w;
+        } else {
+            throw new IllegalStateException();
+        }
+    }
+
+    /**
+     * Writes out all queued records and closes the file.
+     */
+    public synchronized void stop() throws InterruptedException {
+        if (writer != null) {
+            Writer w = writer;
+            writer = null;
+            w.terminate();
+            w.join();
+        } else {
+            throw new IllegalStateException();
+        }
+    }
+
+    public void log(Object sessionId, Object remoteAddress, String commandLine, long durationNanos, String outcome) {
+        Writer w = writer;
+        if (w == null) {
+            return;
+        } else if (w.failed) {
+            dropped.incrementAndGet();
+            return;
+        }
+
+        while (queued.get() >= queueCapacity) {
+            if (overflowPolicy == OverflowPolicy.DROP || writer == null || !w.isAlive()) {
+                dropped.incrementAndGet();
+                return;
+            }
+            LockSupport.unpark(w);
+            LockSupport.parkNanos(FULL_WAIT);
+        }
+
+        queue.offer(new Record(System.currentTimeMillis(), sessionId, remoteAddress, commandLine, durationNanos, outcome));
+        queued.incrementAndGet();
+        LockSupport.unpark(w);
+    }
+
+    private static class Record {
+        public final long time;
+        public final Object sessionId;
+        public final Object remoteAddress;
+        public final String commandLine;
+        public final long durationNanos;
+        public final String outcome;
+
+        public Record(long time, Object sessionId, Object remoteAddress, String commandLine, long durationNanos, String outcome) {
+            this.time = time;
+            this.sessionId = sessionId;
+            this.remoteAddress = remoteAddress;
+            this.commandLine = commandLine;
+            this.durationNanos = durationNanos;
+            this.outcome = outcome;
+        }
+    }
+
+    private class Writer extends Thread {
+        private final SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSSZ");
+        private final StringBuilder sb = new StringBuilder();
+        private volatile boolean terminated = false;
+        private volatile boolean failed = false;
+        private FileChannel channel = null;
+        private int batchSize = 0;
+
+        public Writer() {
+            super("AuditLog-writer");
+            setDaemon(true);
+        }
+
+        public void terminate() {
+            terminated = true;
+            LockSupport.unpark(this);
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (true) {
+                    boolean done = terminated;
+                    try {
+                        if (failed) {
+                            open();
+                            failed = false;
+                        }
+                        if (!writeBatch()) {
+                            if (done) {
+                                break;
+                            }
+                            LockSupport.parkNanos(this, IDLE_WAIT);
+                        }
+                    } catch (IOException e) {
+                        if (!failed) {
+                            e.printStackTrace();
+                        }
+                        // Records are dropped, and counted, until the file can be reopened
+                        failed = true;
+                        close();
+                        dropped.addAndGet(batchSize + discardQueue());
+                        batchSize = 0;
+                        if (done) {
+                            break;
+                        }
+                        LockSupport.parkNanos(this, RETRY_WAIT);
+                    }
+                }
+            } finally {
+                close();
+            }
+        }
+
+        private void open() throws IOException {
+            channel = new FileOutputStream(file, true).getChannel();
+        }
+
+        private int discardQueue() {
+            int n = 0;
+            while (queue.poll() != null) {
+                queued.decrementAndGet();
+                n++;
+            }
+            return n;
+        }
+
+        private void close() {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                // Do nothing
+            }
+        }
+
+        private boolean writeBatch() throws IOException {
+            sb.setLength(0);
+
+            Record r;
+            batchSize = 0;
+            while ((r = queue.poll()) != null) {
+                queued.decrementAndGet();
+                format(r);
+                batchSize++;
+            }
+            if (batchSize == 0) {
+                return false;
+            }
+
+            ByteBuffer buf = ByteBuffer.wrap(sb.toString().getBytes(UTF8));
+            while (buf.hasRemaining()) {
+                channel.write(buf);
+            }
+            if (durability == Durability.BATCH) {
+                channel.force(false);
+            }
+            batchSize = 0;
+
+            if (channel.size() >= maxFileSize) {
+                rotate();
+            }
+            return true;
+        }
+
+        private void format(Record r) {
+            sb.append(format.format(new Date(r.time))).append('\t');
+            appendField(r.sessionId);
+            sb.append('\t');
+            appendField(r.remoteAddress);
+            sb.append('\t');
+            sb.append(TimeUnit.NANOSECONDS.toMillis(r.durationNanos)).append("ms\t");
+            appendField(r.outcome);
+            sb.append('\t');
+            appendField(r.commandLine);
+            sb.append('\n');
+        }
+
+        /**
+         * Replaces control characters so that a field can never break the
+         * one-record-per-line, tab separated format.
+         */
+        private void appendField(Object field) {
+            String s = String.valueOf(field);
+            for (int i = 0; i < s.length(); i++) {
+                char c = s.charAt(i);
+                sb.append(c < ' ' || c == 0x7f ? ' ' : c);
+            }
+        }
+
+        private void rotate() throws IOException {
+            channel.force(true);
+            channel.close();
+
+            for (int i = maxFiles - 1; i >= 1; i--) {
+                File src = new File(file.getPath() + "." + i);
+                if (src.exists()) {
+                    File dst = new File(file.getPath() + "." + (i + 1));
+                    dst.delete();
+                    src.renameTo(dst);
+                }
+            }
+            File dst = new File(file.getPath() + ".1");
+            dst.delete();
+            if (maxFiles > 0) {
+                file.renameTo(dst);
+            } else {
+                file.delete();
+            }
+
+            open();
+        }
+    }
+}
@@ -0,0 +1,164 @@
+package net.nbug.hexprobe.server.telnet;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.Charset;
+
+/**
+ * BatchServer
+ *
+ * A plain, non-interactive channel. The client sends one command line per
+ * line (UTF-8, LF terminated); each reply is the decimal byte length of the
+ * output on its own line followed by the output itself.
+ *
+ * @author hexprobe <hexprobe@nbug.net>
+ *
+ * @license
+ * This code is hereby placed in the public domain.
+ *
+ */
+class BatchServer {
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private final OnCommandLineListener onCommandLineListener;
+    private ServerWorker srv = null;
+
+    public BatchServer(OnCommandLineListener onCommandLineListener) {
+        this.onCommandLineListener = onCommandLineListener;
+    }
+
+    public void start(int port) throws IOException {
+        if (srv == null) {
+            ServerSocket sock = new ServerSocket(port);
+            srv = new ServerWorker(sock);
+            srv.start();
+        } else {
+            throw new IllegalStateException();
+        }
+    }
+
+    public void stop() throws InterruptedException {
+        if (srv != null) {
+            srv.terminate();
+            srv.join();
+            srv = null;
+        } else {
+            throw new IllegalStateException();
+        }
+    }
+
+    static String readLine(InputStream in, int maxLength) throws IOException {
+        ByteArrayOutputStream buf = new ByteArrayOutputStream();
+        while (true) {
+            int b = in.read();
+            if (b < 0) {
+                if (buf.size() == 0) {
+                    return null;
+                }
+                break;
+            } else if (b == '\n') {
+                break;
+            } else if (b != '\r' && buf.size() < maxLength) {
+                buf.write(b);
+            }
+        }
+        return buf.toString(UTF8.name());
+    }
+
+    private class ServerWorker extends Thread {
+        private final ServerSocket ssock;
+        private volatile boolean terminated = false;
+
+        public ServerWorker(ServerSocket ssock) {
+            this.ssock = ssock;
+        }
+
+        public void terminate() {
+            terminated = true;
+
+            if (!ssock.isClosed()) {
+                try {
+                    ssock.close();
+                } catch (IOException e) {
+                    // Do nothing
+                }
+            }
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (!terminated) {
+                    Socket sock = ssock.accept();
+                    ClientWorker cli = new ClientWorker(sock);
+                    cli.setDaemon(true);
+                    cli.start();
+                }
+            } catch (IOException e) {
+                // Do nothing
+            } finally {
+                if (!ssock.isClosed()) {
+                    try {
+                        ssock.close();
+                    } catch (IOException e) {
+                        // Do nothing
+                    }
+                }
+            }
+        }
+    }
+
+    private class ClientWorker extends Thread {
+        private final Socket sock;
+
+        public ClientWorker(Socket sock) {
+            this.sock = sock;
+        }
+
+        @Override
+        public void run() {
+            try {
+                InputStream in = new BufferedInputStream(sock.getInputStream());
+                OutputStream out = new BufferedOutputStream(sock.getOutputStream());
+
+                LoopbackTerminal terminal = new LoopbackTerminal(UTF8);
+                terminal.setSession(EasyTelnetServer.SESSION_ID, EasyTelnetServer.nextSessionId());
+                terminal.setSession(EasyTelnetServer.SESSION_REMOTE_ADDRESS, sock.getRemoteSocketAddress());
+
+                String line;
+                while (!terminal.isClosed() && (line = readLine(in, TelnetTerminal.DEFAULT_MAX_LINE_LENGTH)) != null) {
+                    terminal.reset();
+                    try {
+                        onCommandLineListener.OnCommandLine(terminal, line);
+                    } catch (IOException e) {
+                        // The terminal is in memory, so this comes from the command itself
+                        // (e.g. reading input that a batch client never sends), not from the socket
+                        terminal.writeLine("Error: " + e.toString());
+                    }
+
+                    out.write((terminal.getOutputSize() + "\n").getBytes(UTF8.name()));
+                    terminal.writeOutputTo(out);
+                    out.flush();
+                }
+            } catch (IOException e) {
+                // Do nothing
+            } catch (Exception e) {
+                e.printStackTrace();
+            } finally {
+                if (!sock.isClosed()) {
+                    try {
+                        sock.close();
+                    } catch (IOException e) {
+                        // Do nothing
+                    }
+                }
+            }
+        }
+    }
+}
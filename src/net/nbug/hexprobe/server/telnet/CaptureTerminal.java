@@ -0,0 +1,147 @@
+package net.nbug.hexprobe.server.telnet;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.Set;
+
+/**
+ * CaptureTerminal
+ *
+ * @author hexprobe <hexprobe@nbug.net>
+ *
+ * @license
+ * This code is hereby placed in the public domain.
+ *
+ */
+class CaptureTerminal implements EasyTerminal {
+    private final EasyTerminal terminal;
+    private final boolean input;
+    private final StringBuilder buf = new StringBuilder();
+
+    public CaptureTerminal(EasyTerminal terminal) {
+        this(terminal, true);
+    }
+
+    /**
+     * @param input false to make reads fail instead of blocking on the underlying terminal
+     */
+    public CaptureTerminal(EasyTerminal terminal, boolean input) {
+        this.terminal = terminal;
+        this.input = input;
+    }
+
+    public String getOutput() {
+        return buf.toString();
+    }
+
+    private void checkInput() {
+        if (!input) {
+            throw new IllegalStateException("Input is not available");
+        }
+    }
+
+    @Override
+    public String readLine() throws IOException {
+        checkInput();
+        return terminal.readLine();
+    }
+
+    @Override
+    public String readKey() throws IOException {
+        checkInput();
+        return terminal.readKey();
+    }
+
+    @Override
+    public void write(String s) throws IOException {
+        buf.append(s);
+    }
+
+    @Override
+    public void writeLine(String s) throws IOException {
+        buf.append(s).append("\r\n");
+    }
+
+    @Override
+    public void postMessage(String message) {
+        terminal.postMessage(message);
+    }
+
+    @Override
+    public void flush() throws IOException {
+        // Do nothing
+    }
+
+    @Override
+    public void close() throws IOException {
+        terminal.close();
+    }
+
+    @Override
+    public InputStream getInputStream() {
+        return input ? terminal.getInputStream() : new ByteArrayInputStream(new byte[0]);
+    }
+
+    @Override
+    public OutputStream getOutputStream() {
+        return terminal.getOutputStream();
+    }
+
+    @Override
+    public Charset getEncoding() {
+        return terminal.getEncoding();
+    }
+
+    @Override
+    public int getWidth() {
+        return terminal.getWidth();
+    }
+
+    @Override
+    public int getHeight() {
+        return terminal.getHeight();
+    }
+
+    @Override
+    public void setPrompt(String prompt) {
+        terminal.setPrompt(prompt);
+    }
+
+    @Override
+    public boolean isEcho() {
+        return terminal.isEcho();
+    }
+
+    @Override
+    public void setEcho(boolean enable) {
+        terminal.setEcho(enable);
+    }
+
+    @Override
+    public boolean isLogMode() {
+        return terminal.isLogMode();
+    }
+
+    @Override
+    public void setLogMode(boolean logMode) {
+        terminal.setLogMode(logMode);
+    }
+
+    @Override
+    public Set<String> getSessionKeys() {
+        return terminal.getSessionKeys();
+    }
+
+    @Override
+    public Object getSession(String key) {
+        return terminal.getSession(key);
+    }
+
+    @Override
+    public void setSession(String key, Object value) {
+        terminal.setSession(key, value);
+    }
+}
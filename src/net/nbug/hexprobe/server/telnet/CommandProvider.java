@@ -0,0 +1,20 @@
+package net.nbug.hexprobe.server.telnet;
+
+import java.io.IOException;
+
+/**
+ * CommandProvider
+ *
+ * Implemented by the dispatch tables generated for {@link ShellCommand} methods
+ * and discovered through {@link java.util.ServiceLoader}.
+ *
+ * @author hexprobe <hexprobe@nbug.net>
+ *
+ * @license
+ * This code is hereby placed in the public domain.
+ *
+ */
+public interface CommandProvider {
+    String[] getCommandNames();
+    void execute(String name, String argument, EasyTerminal terminal) throws IOException;
+}
@@ -0,0 +1,27 @@
+package net.nbug.hexprobe.server.telnet;
+
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * DaemonThreadFactory
+ *
+ * @author hexprobe <hexprobe@nbug.net>
+ *
+ * @license
+ * This code is hereby placed in the public domain.
+ *
+ */
+class DaemonThreadFactory implements ThreadFactory {
+    private final String name;
+
+    public DaemonThreadFactory(String name) {
+        this.name = name;
+    }
+
+    @Override
+    public Thread newThread(Runnable r) {
+        Thread t = new Thread(r, name);
+        t.setDaemon(true);
+        return t;
+    }
+}
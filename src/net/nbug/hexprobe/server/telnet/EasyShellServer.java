@@ -1,9 +1,17 @@
 package net.nbug.hexprobe.server.telnet;
 
 import java.io.IOException;
+import java.io.OutputStream;
 import java.util.HashMap;
 import java.util.Locale;
 import java.util.Map;
+import java.util.ServiceLoader;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
 
 import net.nbug.hexprobe.util.StringUtils;
 
@@ -17,7 +25,15 @@ import net.nbug.hexprobe.util.StringUtils;
  *
  */
 public class EasyShellServer {
+    private static final long DEFAULT_CACHE_CAPACITY = 4 * 1024 * 1024;
+    private static final long DEFAULT_WATCH_INTERVAL = 2000;
+    private static final long MIN_WATCH_INTERVAL = 100;
+
     private final Map<String, Command> commands = new HashMap<String, Command>();
+    private final ResultCache cache = new ResultCache(DEFAULT_CACHE_CAPACITY);
+    private final CommandProcessor processor = new CommandProcessor();
+    private final ExecutorService executor = Executors.newCachedThreadPool(new DaemonThreadFactory("EasyShellServer-worker"));
+    private final FanOut fanOut = new FanOut(executor);
     {
         registerCommand("exit", new Command() {
             @Override
@@ -47,14 +63,30 @@ public class EasyShellServer {
                 terminal.flush();
             }
         });
+
+        registerCommand("watch", new Command() {
+            @Override
+            public void execute(String name, String argument, EasyTerminal terminal) throws IOException {
+                watch(argument, terminal);
+            }
+        });
     }
 
     private EasyTelnetServer telnetd = null;
+    private BatchServer batchd = null;
+    private ScheduledExecutorService scheduler = null;
+    private int maxLineLength = TelnetTerminal.DEFAULT_MAX_LINE_LENGTH;
+    private int maxEscapeLength = TelnetTerminal.DEFAULT_MAX_ESCAPE_LENGTH;
+    private int maxPasteLength = TelnetTerminal.DEFAULT_MAX_PASTE_LENGTH;
+    private volatile AuditLog auditLog = null;
 
     public void start(int port) throws IOException {
         if (telnetd == null) {
             EasyTelnetServer srv = new EasyTelnetServer();
-            srv.setOnCommandLineListener(new CommandProcessor());
+            srv.setOnCommandLineListener(processor);
+            srv.setMaxLineLength(maxLineLength);
+            srv.setMaxEscapeLength(maxEscapeLength);
+            srv.setMaxPasteLength(maxPasteLength);
             srv.start(port);
             telnetd = srv;
         } else {
@@ -66,37 +98,337 @@ public class EasyShellServer {
         if (telnetd != null) {
             telnetd.stop();
             telnetd = null;
+
+            synchronized (this) {
+                if (scheduler != null) {
+                    scheduler.shutdownNow();
+                    scheduler = null;
+                }
+            }
+        } else {
+            throw new IllegalStateException();
+        }
+    }
+
+    public void setMaxLineLength(int maxLineLength) {
+        this.maxLineLength = maxLineLength;
+    }
+
+    public void setMaxEscapeLength(int maxEscapeLength) {
+        this.maxEscapeLength = maxEscapeLength;
+    }
+
+    public void setMaxPasteLength(int maxPasteLength) {
+        this.maxPasteLength = maxPasteLength;
+    }
+
+    /**
+     * Records every dispatched command line to the given log. The log must be started by the caller.
+     */
+    public void setAuditLog(AuditLog auditLog) {
+        this.auditLog = auditLog;
+    }
+
+    /**
+     * Starts the plain batch channel used by peers for fan-out.
+     */
+    public void startBatch(int port) throws IOException {
+        if (batchd == null) {
+            BatchServer srv = new BatchServer(new OnCommandLineListener() {
+                @Override
+                public void OnCommandLine(EasyTerminal terminal, String commandLine) throws IOException {
+                    if (commandLine.trim().startsWith("@")) {
+                        terminal.writeLine("Fan-out is not available on the batch channel.");
+                    } else {
+                        processor.OnCommandLine(terminal, commandLine);
+                    }
+                }
+            });
+            srv.start(port);
+            batchd = srv;
         } else {
             throw new IllegalStateException();
         }
     }
 
+    public void stopBatch() throws InterruptedException {
+        if (batchd != null) {
+            batchd.stop();
+            batchd = null;
+        } else {
+            throw new IllegalStateException();
+        }
+    }
+
+    /**
+     * Adds a peer reachable through its batch channel. Command lines starting with
+     * "@all" or "@name1,name2" are run on the selected peers; append ":sum" to the
+     * selector to add up numeric columns instead of labeling each peer's output.
+     */
+    public void addPeer(String name, String host, int port) {
+        fanOut.addPeer(name, host, port);
+    }
+
+    /**
+     * Sets the per-peer timeout in milliseconds.
+     */
+    public void setPeerTimeout(int timeout) {
+        fanOut.setTimeout(timeout);
+    }
+
+    /**
+     * Runs a command line on the given terminal without a telnet session,
+     * e.g. on a {@link LoopbackTerminal}.
+     */
+    public void execute(String commandLine, EasyTerminal terminal) throws IOException {
+        processor.OnCommandLine(terminal, commandLine);
+    }
+
+    /**
+     * Runs a command line and returns its output.
+     */
+    public String execute(String commandLine) throws IOException {
+        LoopbackTerminal terminal = new LoopbackTerminal();
+        execute(commandLine, terminal);
+        return terminal.getOutput();
+    }
+
     public void registerCommand(String name, Command command) {
         commands.put(name.toLowerCase(Locale.getDefault()), command);
     }
 
+    /**
+     * Registers the commands of every {@link CommandProvider} generated from
+     * {@link ShellCommand} methods visible to the context class loader.
+     */
+    public void loadCommands() {
+        loadCommands(Thread.currentThread().getContextClassLoader());
+    }
+
+    public void loadCommands(ClassLoader loader) {
+        for (CommandProvider provider : ServiceLoader.load(CommandProvider.class, loader)) {
+            for (String name : provider.getCommandNames()) {
+                registerCommand(name, new ProvidedCommand(provider, name));
+            }
+        }
+    }
+
+    /**
+     * Sets the maximum total size, in characters, of the cached output of
+     * {@link CacheableCommand}s. Least recently used results are evicted first.
+     */
+    public void setResultCacheCapacity(long capacity) {
+        cache.setCapacity(capacity);
+    }
+
+    public void clearResultCache() {
+        cache.clear();
+    }
+
+    private void executeCached(final Command command, final String name, final String argument, final EasyTerminal terminal) throws Exception {
+        long ttl = ((CacheableCommand) command).getCacheTtl();
+        String key = name + " " + normalize(argument);
+
+        String output = cache.get(key, ttl, new Callable<String>() {
+            @Override
+            public String call() throws Exception {
+                CaptureTerminal capture = new CaptureTerminal(terminal);
+                command.execute(name, argument, capture);
+                return capture.getOutput();
+            }
+        });
+
+        terminal.write(output);
+        terminal.flush();
+    }
+
+    private static String normalize(String argument) {
+        return argument.trim().replaceAll("\\s+", " ");
+    }
+
+    private synchronized ScheduledExecutorService getScheduler() {
+        if (scheduler == null) {
+            scheduler = Executors.newScheduledThreadPool(Runtime.getRuntime().availableProcessors(),
+                new DaemonThreadFactory("EasyShellServer-scheduler"));
+        }
+        return scheduler;
+    }
+
+    private void watch(String argument, EasyTerminal terminal) throws IOException {
+        long interval = DEFAULT_WATCH_INTERVAL;
+        String commandLine = argument;
+
+        if (argument.startsWith("-n")) {
+            String[] tokens = argument.split("\\s+", 3);
+            commandLine = tokens.length == 3 ? tokens[2] : "";
+            try {
+                interval = tokens.length >= 2 ? (long) (Double.parseDouble(tokens[1]) * 1000) : 0;
+            } catch (NumberFormatException e) {
+                interval = 0;
+            }
+        }
+
+        if (commandLine.isEmpty() || interval < MIN_WATCH_INTERVAL) {
+            terminal.writeLine("Usage: watch [-n <seconds>] <command>");
+            terminal.flush();
+            return;
+        }
+
+        // The refresh runs on the shared scheduler; a nested watch would block it waiting for a key.
+        if (commandLine.split("\\s+")[0].toLowerCase(Locale.getDefault()).equals("watch")) {
+            terminal.writeLine("Cannot watch the watch command.");
+            terminal.flush();
+            return;
+        }
+
+        OutputStream out = terminal.getOutputStream();
+        Watch watch = new Watch(terminal, commandLine, interval);
+
+        // Draw on the alternate screen so that the terminal's cursor state is restored on exit.
+        out.write("\u001b[?1049h".getBytes(terminal.getEncoding().name()));
+        ScheduledFuture<?> future = getScheduler().scheduleWithFixedDelay(watch, 0, interval, TimeUnit.MILLISECONDS);
+        try {
+            terminal.readKey();
+        } finally {
+            future.cancel(false);
+            watch.stop();
+            out.write("\u001b[?1049l".getBytes(terminal.getEncoding().name()));
+            out.flush();
+        }
+    }
+
     private class CommandProcessor implements OnCommandLineListener {
         @Override
         public void OnCommandLine(EasyTerminal terminal, String commandLine) throws IOException {
+            AuditLog log = auditLog;
+            if (log == null || commandLine.trim().isEmpty()) {
+                process(terminal, commandLine);
+                return;
+            }
+
+            long start = System.nanoTime();
+            String outcome = "IO_ERROR";
+            try {
+                outcome = process(terminal, commandLine);
+            } finally {
+                log.log(terminal.getSession(EasyTelnetServer.SESSION_ID),
+                        terminal.getSession(EasyTelnetServer.SESSION_REMOTE_ADDRESS),
+                        commandLine.trim(), System.nanoTime() - start, outcome);
+            }
+        }
+
+        /**
+         * @return outcome recorded in the audit log
+         */
+        public String process(EasyTerminal terminal, String commandLine) throws IOException {
             try {
                 commandLine = commandLine.trim();
                 String[] tokens = commandLine.split(" ");
                 String name = tokens[0].toLowerCase(Locale.getDefault());
                 Command command = commands.get(name);
-                if (command != null) {
+                if (name.startsWith("@")) {
+                    fanOut.execute(commandLine, terminal);
+                } else if (command instanceof CacheableCommand) {
+                    executeCached(command, name, commandLine.substring(name.length()).trim(), terminal);
+                } else if (command != null) {
                     command.execute(name, commandLine.substring(name.length()).trim(), terminal);
                 } else if (name.isEmpty()) {
                     // Do nothing
                 } else {
                     terminal.writeLine("Command not found.");
                     terminal.flush();
+                    return "NOT_FOUND";
                 }
+                return "OK";
             } catch (IOException e) {
                 throw e;
             } catch (Exception e) {
                 e.printStackTrace();
                 terminal.writeLine("Error: " + e.toString());
                 terminal.flush();
+                return "ERROR " + e.toString();
+            }
+        }
+    }
+
+    private static class ProvidedCommand implements Command {
+        private final CommandProvider provider;
+        private final String name;
+
+        public ProvidedCommand(CommandProvider provider, String name) {
+            this.provider = provider;
+            this.name = name;
+        }
+
+        @Override
+        public void execute(String name, String argument, EasyTerminal terminal) throws IOException {
+            provider.execute(this.name, argument, terminal);
+        }
+    }
+
+    private class Watch implements Runnable {
+        private final EasyTerminal terminal;
+        private final String commandLine;
+        private final String header;
+
+        private ScreenBuffer front = null;
+        private ScreenBuffer back = null;
+        private int width = 0;
+        private int height = 0;
+        private boolean stopped = false;
+
+        public Watch(EasyTerminal terminal, String commandLine, long interval) {
+            this.terminal = terminal;
+            this.commandLine = commandLine;
+            this.header = String.format("Every %.1fs: %s  (press any key to exit)", interval / 1000.0, commandLine);
+        }
+
+        public synchronized void stop() {
+            stopped = true;
+        }
+
+        @Override
+        public synchronized void run() {
+            if (stopped) {
+                return;
+            }
+
+            try {
+                // Refreshes must not read from the session, or an interactive command would block the scheduler.
+                CaptureTerminal capture = new CaptureTerminal(terminal, false);
+                processor.process(capture, commandLine);
+
+                // The window size may change while watching; start over with a full redraw.
+                if (terminal.getWidth() != width || terminal.getHeight() != height) {
+                    width = terminal.getWidth();
+                    height = terminal.getHeight();
+                    front = null;
+                    back = null;
+                }
+                if (back == null) {
+                    back = new ScreenBuffer(width, height);
+                }
+
+                back.clear();
+                back.print(header);
+                back.print("\n\n");
+                back.print(capture.getOutput());
+
+                StringBuilder sb = new StringBuilder();
+                back.diff(front, sb);
+
+                ScreenBuffer tmp = front;
+                front = back;
+                back = tmp;
+
+                if (sb.length() > 0) {
+                    OutputStream out = terminal.getOutputStream();
+                    out.write(sb.toString().getBytes(terminal.getEncoding().name()));
+                    out.flush();
+                }
+            } catch (IOException e) {
+                // The session thread notices the closed connection and stops the watch
+                stopped = true;
             }
         }
     }
@@ -104,4 +436,16 @@ public class EasyShellServer {
     public interface Command {
         void execute(String name, String argument, EasyTerminal terminal) throws IOException;
     }
+
+    /**
+     * A command whose output depends only on its name and argument.
+     * Concurrent identical invocations share a single execution, and the
+     * output is reused until the TTL expires.
+     */
+    public interface CacheableCommand extends Command {
+        /**
+         * @return time to live of the cached output in milliseconds
+         */
+        long getCacheTtl();
+    }
 }
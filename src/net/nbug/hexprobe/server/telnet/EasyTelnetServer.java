@@ -1,11 +1,16 @@
 package net.nbug.hexprobe.server.telnet;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
 import java.net.ServerSocket;
 import java.net.Socket;
 import java.nio.charset.Charset;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * EasyTelnetServer
@@ -17,13 +22,24 @@ import java.nio.charset.Charset;
  *
  */
 public class EasyTelnetServer {
+    public static final String SESSION_ID = "telnet.sessionId";
+    public static final String SESSION_REMOTE_ADDRESS = "telnet.remoteAddress";
+
+    private static final AtomicLong sessionCount = new AtomicLong();
+
     private String prompt = null;
+    private int maxLineLength = TelnetTerminal.DEFAULT_MAX_LINE_LENGTH;
+    private int maxEscapeLength = TelnetTerminal.DEFAULT_MAX_ESCAPE_LENGTH;
+    private int maxPasteLength = TelnetTerminal.DEFAULT_MAX_PASTE_LENGTH;
+    private boolean bracketedPaste = true;
     private ServerWorker srv = null;
+    private ExecutorService executor = null;
     private OnCommandLineListener onCommandLineListener = null;
 
     public void start(int port) throws IOException {
         if (srv == null) {
             ServerSocket sock = new ServerSocket(port);
+            executor = Executors.newCachedThreadPool(new DaemonThreadFactory("EasyTelnetServer-notifier"));
             srv = new ServerWorker(sock);
             srv.start();
         } else {
@@ -36,6 +52,8 @@ public class EasyTelnetServer {
             srv.terminate();
             srv.join();
             srv = null;
+            executor.shutdown();
+            executor = null;
         } else {
             throw new IllegalStateException();
         }
@@ -45,10 +63,30 @@ public class EasyTelnetServer {
         this.prompt = prompt;
     }
 
+    public void setMaxLineLength(int maxLineLength) {
+        this.maxLineLength = maxLineLength;
+    }
+
+    public void setMaxEscapeLength(int maxEscapeLength) {
+        this.maxEscapeLength = maxEscapeLength;
+    }
+
+    public void setMaxPasteLength(int maxPasteLength) {
+        this.maxPasteLength = maxPasteLength;
+    }
+
+    public void setBracketedPaste(boolean bracketedPaste) {
+        this.bracketedPaste = bracketedPaste;
+    }
+
     public void setOnCommandLineListener(OnCommandLineListener onCommandLineListener) {
         this.onCommandLineListener = onCommandLineListener;
     }
 
+    static long nextSessionId() {
+        return sessionCount.incrementAndGet();
+    }
+
     private class ServerWorker extends Thread {
         private final ServerSocket ssock;
         private volatile boolean terminated = false;
@@ -103,12 +141,19 @@ public class EasyTelnetServer {
             try {
                 TelnetTerminal telnet =
                     new TelnetTerminal(
-                        new DataOutputStream(sock.getOutputStream()),
-                        new DataInputStream(sock.getInputStream()),
+                        new DataOutputStream(new BufferedOutputStream(sock.getOutputStream())),
+                        new DataInputStream(new BufferedInputStream(sock.getInputStream())),
                         Charset.forName("UTF-8"));
                 if (prompt != null) {
                     telnet.setPrompt(prompt);
                 }
+                telnet.setMaxLineLength(maxLineLength);
+                telnet.setMaxEscapeLength(maxEscapeLength);
+                telnet.setMaxPasteLength(maxPasteLength);
+                telnet.setBracketedPaste(bracketedPaste);
+                telnet.setSession(SESSION_ID, nextSessionId());
+                telnet.setSession(SESSION_REMOTE_ADDRESS, sock.getRemoteSocketAddress());
+                telnet.setExecutor(executor);
                 telnet.setOnCommandLineListener(onCommandLineListener);
                 telnet.run();
             } catch (IOException e) {
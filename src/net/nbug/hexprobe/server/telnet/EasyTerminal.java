@@ -2,6 +2,7 @@ package net.nbug.hexprobe.server.telnet;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
 import java.nio.charset.Charset;
 import java.util.Set;
 
@@ -16,12 +17,17 @@ import java.util.Set;
  */
 public interface EasyTerminal {
     String readLine() throws IOException;
+    String readKey() throws IOException;
     void write(String s) throws IOException;
     void writeLine(String s) throws IOException;
+    void postMessage(String message);
     void flush() throws IOException;
     void close() throws IOException;
     InputStream getInputStream();
+    OutputStream getOutputStream();
     Charset getEncoding();
+    int getWidth();
+    int getHeight();
     void setPrompt(String prompt);
     boolean isEcho();
     void setEcho(boolean enable);
@@ -0,0 +1,297 @@
+package net.nbug.hexprobe.server.telnet;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+
+/**
+ * FanOut
+ *
+ * Runs a command line on a set of peers through their batch channel.
+ * The selector is "@all" or "@name1,name2", optionally followed by ":sum".
+ *
+ * @author hexprobe <hexprobe@nbug.net>
+ *
+ * @license
+ * This code is hereby placed in the public domain.
+ *
+ */
+class FanOut {
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private static final Pattern NUMBER = Pattern.compile("-?\\d+(\\.\\d+)?");
+    private static final String SUM = ":sum";
+    private static final int MAX_REPLY_LENGTH = 16 * 1024 * 1024;
+
+    private final Map<String, Peer> peers = new LinkedHashMap<String, Peer>();
+    private final ExecutorService executor;
+    private volatile int timeout = 5000;
+
+    public FanOut(ExecutorService executor) {
+        this.executor = executor;
+    }
+
+    public synchronized void addPeer(String name, String host, int port) {
+        peers.put(name, new Peer(name, host, port));
+    }
+
+    public void setTimeout(int timeout) {
+        this.timeout = timeout;
+    }
+
+    public void execute(String commandLine, EasyTerminal terminal) throws IOException {
+        int i = commandLine.indexOf(' ');
+        String selector = i >= 0 ? commandLine.substring(1, i) : commandLine.substring(1);
+        final String command = i >= 0 ? commandLine.substring(i + 1).trim() : "";
+
+        boolean sum = selector.endsWith(SUM);
+        if (sum) {
+            selector = selector.substring(0, selector.length() - SUM.length());
+        }
+
+        List<Peer> targets = new ArrayList<Peer>();
+        synchronized (this) {
+            if (selector.equals("all")) {
+                targets.addAll(peers.values());
+            } else {
+                for (String name : selector.split(",")) {
+                    Peer peer = peers.get(name);
+                    if (peer == null) {
+                        terminal.writeLine("Unknown peer: " + name);
+                        terminal.flush();
+                        return;
+                    }
+                    targets.add(peer);
+                }
+            }
+        }
+
+        if (command.isEmpty() || targets.isEmpty()) {
+            terminal.writeLine("Usage: @<all|peer,...>[" + SUM + "] <command>");
+            terminal.flush();
+            return;
+        }
+
+        CompletionService<Result> results = new ExecutorCompletionService<Result>(executor);
+        List<Future<Result>> futures = new ArrayList<Future<Result>>();
+        for (final Peer peer : targets) {
+            futures.add(results.submit(new Callable<Result>() {
+                @Override
+                public Result call() {
+                    try {
+                        return new Result(peer.name, peer.execute(command, timeout), null);
+                    } catch (IOException e) {
+                        return new Result(peer.name, null, e.toString());
+                    }
+                }
+            }));
+        }
+
+        Map<String, Result> done = new LinkedHashMap<String, Result>();
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeout);
+        try {
+            for (int n = 0; n < targets.size(); n++) {
+                Future<Result> f = results.poll(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+                if (f == null) {
+                    break;
+                }
+
+                Result r = f.get();
+                done.put(r.name, r);
+                if (!sum) {
+                    writeLabeled(terminal, r);
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            throw new IllegalStateException(e);
+        } finally {
+            for (Future<Result> f : futures) {
+                f.cancel(true);
+            }
+        }
+
+        if (sum) {
+            List<String> outputs = new ArrayList<String>();
+            for (Peer peer : targets) {
+                Result r = done.get(peer.name);
+                if (r == null) {
+                    continue;
+                } else if (r.output != null) {
+                    outputs.add(r.output);
+                } else {
+                    writeLabeled(terminal, r);
+                }
+            }
+            terminal.write(sumColumns(outputs));
+        }
+        for (Peer peer : targets) {
+            if (!done.containsKey(peer.name)) {
+                terminal.writeLine("[" + peer.name + "] Timed out.");
+            }
+        }
+        terminal.flush();
+    }
+
+    private static void writeLabeled(EasyTerminal terminal, Result r) throws IOException {
+        String label = "[" + r.name + "] ";
+        if (r.output == null) {
+            terminal.writeLine(label + "Error: " + r.error);
+        } else {
+            for (String line : r.output.split("\r?\n")) {
+                terminal.writeLine(label + line);
+            }
+        }
+        terminal.flush();
+    }
+
+    /**
+     * Merges outputs line by line. The n-th line of a given shape (its text with
+     * the numbers taken out) in one output is combined with the n-th line of the
+     * same shape in the others, with each numeric column summed. Lines are
+     * emitted in order of first appearance, taking the outputs in the given order.
+     */
+    static String sumColumns(List<String> outputs) {
+        Map<String, List<Number>> sums = new LinkedHashMap<String, List<Number>>();
+
+        for (String output : outputs) {
+            Map<String, Integer> seen = new HashMap<String, Integer>();
+            for (String line : output.split("\r?\n")) {
+                String[] tokens = line.trim().split("\\s+");
+                StringBuilder key = new StringBuilder();
+                List<Number> values = new ArrayList<Number>();
+                for (String token : tokens) {
+                    Number value = parseNumber(token);
+                    if (value != null) {
+                        values.add(value);
+                        key.append('\0');
+                    } else {
+                        key.append(token);
+                    }
+                    key.append(' ');
+                }
+
+                Integer count = seen.get(key.toString());
+                count = count == null ? 0 : count + 1;
+                seen.put(key.toString(), count);
+                key.append('\n').append(count);
+
+                List<Number> total = sums.get(key.toString());
+                if (total == null) {
+                    sums.put(key.toString(), values);
+                } else {
+                    for (int i = 0; i < values.size(); i++) {
+                        total.set(i, add(total.get(i), values.get(i)));
+                    }
+                }
+            }
+        }
+
+        StringBuilder sb = new StringBuilder();
+        for (Map.Entry<String, List<Number>> entry : sums.entrySet()) {
+            String key = entry.getKey();
+            String[] tokens = key.substring(0, key.lastIndexOf('\n')).split(" ");
+            int i = 0;
+            for (int j = 0; j < tokens.length; j++) {
+                sb.append(j == 0 ? "" : " ");
+                sb.append(tokens[j].equals("\0") ? entry.getValue().get(i++) : tokens[j]);
+            }
+            sb.append("\r\n");
+        }
+        return sb.toString();
+    }
+
+    private static Number parseNumber(String token) {
+        if (!NUMBER.matcher(token).matches()) {
+            return null;
+        }
+        try {
+            return token.indexOf('.') >= 0 ? (Number) Double.valueOf(token) : (Number) Long.valueOf(token);
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    private static Number add(Number a, Number b) {
+        if (a instanceof Long && b instanceof Long) {
+            return a.longValue() + b.longValue();
+        } else {
+            return a.doubleValue() + b.doubleValue();
+        }
+    }
+
+    private static class Result {
+        public final String name;
+        public final String output;
+        public final String error;
+
+        public Result(String name, String output, String error) {
+            this.name = name;
+            this.output = output;
+            this.error = error;
+        }
+    }
+
+    private static class Peer {
+        public final String name;
+        public final String host;
+        public final int port;
+
+        public Peer(String name, String host, int port) {
+            this.name = name;
+            this.host = host;
+            this.port = port;
+        }
+
+        public String execute(String commandLine, int timeout) throws IOException {
+            Socket sock = new Socket();
+            try {
+                sock.connect(new InetSocketAddress(host, port), timeout);
+                sock.setSoTimeout(timeout);
+
+                OutputStream out = sock.getOutputStream();
+                out.write((commandLine + "\n").getBytes(UTF8.name()));
+                out.flush();
+
+                DataInputStream in = new DataInputStream(new BufferedInputStream(sock.getInputStream()));
+                String header = BatchServer.readLine(in, 16);
+                if (header == null) {
+                    throw new IOException("Connection closed");
+                }
+
+                int length;
+                try {
+                    length = Integer.parseInt(header.trim());
+                } catch (NumberFormatException e) {
+                    throw new IOException("Bad reply: " + header);
+                }
+                if (length < 0 || length > MAX_REPLY_LENGTH) {
+                    throw new IOException("Bad reply: " + header);
+                }
+
+                byte[] output = new byte[length];
+                in.readFully(output);
+                return new String(output, UTF8.name());
+            } finally {
+                sock.close();
+            }
+        }
+    }
+}
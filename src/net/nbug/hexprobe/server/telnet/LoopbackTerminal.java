@@ -0,0 +1,222 @@
+package net.nbug.hexprobe.server.telnet;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * LoopbackTerminal
+ *
+ * An in-memory terminal for running commands without a telnet connection.
+ * Output is collected as is, without echo or VT100 processing, into a
+ * buffer that can be reset and reused between commands.
+ *
+ * @author hexprobe <hexprobe@nbug.net>
+ *
+ * @license
+ * This code is hereby placed in the public domain.
+ *
+ */
+public class LoopbackTerminal implements EasyTerminal {
+    private static final byte[] NEWLINE = { '\r', '\n' };
+
+    private final Charset encoding;
+    private final ByteArrayOutputStream out = new ByteArrayOutputStream();
+    private final Map<String, Object> session = new HashMap<String, Object>();
+
+    private InputStream in = new ByteArrayInputStream(new byte[0]);
+    private int width = 80;
+    private int height = 24;
+    private boolean echo = true;
+    private boolean logMode = false;
+    private boolean closed = false;
+
+    public LoopbackTerminal() {
+        this(Charset.forName("UTF-8"));
+    }
+
+    public LoopbackTerminal(Charset encoding) {
+        this.encoding = encoding;
+    }
+
+    /**
+     * Sets the text returned by subsequent {@link #readLine()} calls.
+     */
+    public void setInput(String input) {
+        in = new ByteArrayInputStream(input.getBytes(encoding));
+    }
+
+    public void setScreenSize(int width, int height) {
+        this.width = width;
+        this.height = height;
+    }
+
+    public String getOutput() {
+        try {
+            return out.toString(encoding.name());
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    public int getOutputSize() {
+        return out.size();
+    }
+
+    public void writeOutputTo(OutputStream s) throws IOException {
+        out.writeTo(s);
+    }
+
+    /**
+     * Discards the collected output and reopens the terminal.
+     */
+    public void reset() {
+        out.reset();
+        closed = false;
+    }
+
+    public boolean isClosed() {
+        return closed;
+    }
+
+    @Override
+    public String readLine() throws IOException {
+        ByteArrayOutputStream buf = new ByteArrayOutputStream();
+
+        while (true) {
+            int b = in.read();
+            if (b < 0) {
+                if (buf.size() == 0) {
+                    throw new IOException("End of input");
+                }
+                break;
+            } else if (b == '\n') {
+                break;
+            } else if (b != '\r') {
+                buf.write(b);
+            }
+        }
+
+        return buf.toString(encoding.name());
+    }
+
+    @Override
+    public String readKey() throws IOException {
+        int b = in.read();
+        if (b < 0) {
+            throw new IOException("End of input");
+        }
+
+        ByteArrayOutputStream buf = new ByteArrayOutputStream();
+        buf.write(b);
+        if (encoding.name().equals("UTF-8")) {
+            int n = b >= 0xf0 ? 3 : b >= 0xe0 ? 2 : b >= 0xc0 ? 1 : 0;
+            for (; n > 0 && (b = in.read()) >= 0; n--) {
+                buf.write(b);
+            }
+        }
+        return buf.toString(encoding.name());
+    }
+
+    @Override
+    public void write(String s) throws IOException {
+        out.write(s.getBytes(encoding));
+    }
+
+    @Override
+    public void writeLine(String s) throws IOException {
+        write(s);
+        out.write(NEWLINE);
+    }
+
+    /**
+     * Appends the message to the output in a single write, so it does not
+     * interleave with output of the running command.
+     */
+    @Override
+    public void postMessage(String message) {
+        byte[] b = (message + "\r\n").getBytes(encoding);
+        out.write(b, 0, b.length);
+    }
+
+    @Override
+    public void flush() throws IOException {
+        // Do nothing
+    }
+
+    @Override
+    public void close() throws IOException {
+        closed = true;
+    }
+
+    @Override
+    public InputStream getInputStream() {
+        return in;
+    }
+
+    @Override
+    public OutputStream getOutputStream() {
+        return out;
+    }
+
+    @Override
+    public Charset getEncoding() {
+        return encoding;
+    }
+
+    @Override
+    public int getWidth() {
+        return width;
+    }
+
+    @Override
+    public int getHeight() {
+        return height;
+    }
+
+    @Override
+    public void setPrompt(String prompt) {
+        // Do nothing
+    }
+
+    @Override
+    public boolean isEcho() {
+        return echo;
+    }
+
+    @Override
+    public void setEcho(boolean enable) {
+        echo = enable;
+    }
+
+    @Override
+    public boolean isLogMode() {
+        return logMode;
+    }
+
+    @Override
+    public void setLogMode(boolean logMode) {
+        this.logMode = logMode;
+    }
+
+    @Override
+    public Set<String> getSessionKeys() {
+        return session.keySet();
+    }
+
+    @Override
+    public Object getSession(String key) {
+        return session.get(key);
+    }
+
+    @Override
+    public void setSession(String key, Object value) {
+        session.put(key, value);
+    }
+}
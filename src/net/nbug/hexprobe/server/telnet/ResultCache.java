@@ -0,0 +1,138 @@
+package net.nbug.hexprobe.server.telnet;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * ResultCache
+ *
+ * @author hexprobe <hexprobe@nbug.net>
+ *
+ * @license
+ * This code is hereby placed in the public domain.
+ *
+ */
+class ResultCache {
+    private final Map<String, Entry> entries = new LinkedHashMap<String, Entry>(16, 0.75f, true);
+    private final Map<String, FutureTask<String>> loading = new HashMap<String, FutureTask<String>>();
+
+    private long capacity;
+    private long size = 0;
+
+    public ResultCache(long capacity) {
+        this.capacity = capacity;
+    }
+
+    public synchronized void setCapacity(long capacity) {
+        this.capacity = capacity;
+        evict();
+    }
+
+    public synchronized void clear() {
+        entries.clear();
+        size = 0;
+    }
+
+    public String get(final String key, final long ttl, final Callable<String> loader) throws Exception {
+        FutureTask<String> task;
+        boolean owner = false;
+
+        synchronized (this) {
+            Entry entry = entries.get(key);
+            if (entry != null) {
+                if (System.nanoTime() - entry.created < entry.ttl) {
+                    return entry.value;
+                }
+                remove(key);
+            }
+
+            task = loading.get(key);
+            if (task == null) {
+                task = new FutureTask<String>(new Callable<String>() {
+                    @Override
+                    public String call() throws Exception {
+                        String value = loader.call();
+                        put(key, value, ttl);
+                        return value;
+                    }
+                });
+                loading.put(key, task);
+                owner = true;
+            }
+        }
+
+        if (owner) {
+            try {
+                task.run();
+            } finally {
+                synchronized (this) {
+                    loading.remove(key);
+                }
+            }
+        }
+
+        try {
+            return task.get();
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof Exception) {
+                throw (Exception) cause;
+            } else if (cause instanceof Error) {
+                throw (Error) cause;
+            } else {
+                throw e;
+            }
+        }
+    }
+
+    private synchronized void put(String key, String value, long ttl) {
+        long weight = weigh(key, value);
+        if (ttl <= 0 || weight > capacity) {
+            return;
+        }
+
+        remove(key);
+        // toNanos saturates, so a huge TTL (e.g. Long.MAX_VALUE) means the entry never expires
+        entries.put(key, new Entry(value, System.nanoTime(), TimeUnit.MILLISECONDS.toNanos(ttl)));
+        size += weight;
+        evict();
+    }
+
+    private void remove(String key) {
+        Entry entry = entries.remove(key);
+        if (entry != null) {
+            size -= weigh(key, entry.value);
+        }
+    }
+
+    private void evict() {
+        Iterator<Map.Entry<String, Entry>> it = entries.entrySet().iterator();
+        while (size > capacity && it.hasNext()) {
+            Map.Entry<String, Entry> eldest = it.next();
+            size -= weigh(eldest.getKey(), eldest.getValue().value);
+            it.remove();
+        }
+    }
+
+    private static long weigh(String key, String value) {
+        return key.length() + value.length();
+    }
+
+    private static class Entry {
+        public final String value;
+        public final long created;
+        public final long ttl;
+
+        public Entry(String value, long created, long ttl) {
+            this.value = value;
+            this.created = created;
+            this.ttl = ttl;
+        }
+    }
+}
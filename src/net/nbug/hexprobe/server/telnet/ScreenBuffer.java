@@ -0,0 +1,135 @@
+package net.nbug.hexprobe.server.telnet;
+
+import java.util.Arrays;
+
+import net.nbug.hexprobe.util.StringUtils;
+
+/**
+ * ScreenBuffer
+ *
+ * @author hexprobe <hexprobe@nbug.net>
+ *
+ * @license
+ * This code is hereby placed in the public domain.
+ *
+ */
+class ScreenBuffer {
+    private static final int BLANK = ' ';
+    private static final int WIDE = -1;
+    private static final int TAB_SIZE = 8;
+
+    // Repositioning the cursor costs about 6 bytes, so short unchanged gaps are rewritten instead.
+    private static final int MAX_GAP = 6;
+
+    private final int width;
+    private final int height;
+    private final int[] cells;
+
+    private int x = 0;
+    private int y = 0;
+
+    public ScreenBuffer(int width, int height) {
+        this.width = width;
+        this.height = height;
+        this.cells = new int[width * height];
+        clear();
+    }
+
+    public void clear() {
+        Arrays.fill(cells, BLANK);
+        x = 0;
+        y = 0;
+    }
+
+    public void print(String s) {
+        int i = 0;
+        while (i < s.length()) {
+            int cp = s.codePointAt(i);
+            i += Character.charCount(cp);
+
+            switch (cp) {
+            case '\r':
+                x = 0;
+                break;
+
+            case '\n':
+                x = 0;
+                y++;
+                break;
+
+            case '\t':
+                x = Math.min(x + TAB_SIZE - x % TAB_SIZE, width);
+                break;
+
+            default:
+                if (cp < ' ' || cp == TelnetTerminal.DEL) {
+                    break;
+                }
+
+                int w = cp > Character.MAX_VALUE ? 2 : StringUtils.getPhysicalWidth((char) cp);
+                if (x + w > width) {
+                    x = 0;
+                    y++;
+                }
+                if (y < height) {
+                    cells[y * width + x] = cp;
+                    if (w == 2) {
+                        cells[y * width + x + 1] = WIDE;
+                    }
+                }
+                x += w;
+            }
+        }
+    }
+
+    /**
+     * Appends to sb the VT100 sequences that turn the terminal contents from prev into this buffer.
+     * If prev is null or has a different size, the whole screen is redrawn.
+     */
+    public void diff(ScreenBuffer prev, StringBuilder sb) {
+        if (prev == null || prev.width != width || prev.height != height) {
+            sb.append("\u001b[H\u001b[2J");
+            prev = new ScreenBuffer(width, height);
+        }
+
+        for (int row = 0; row < height; row++) {
+            int base = row * width;
+            int col = 0;
+
+            while (col < width) {
+                if (cells[base + col] == prev.cells[base + col]) {
+                    col++;
+                    continue;
+                }
+
+                int begin = col;
+                if (cells[base + begin] == WIDE && begin > 0) {
+                    begin--;
+                }
+
+                int end = col + 1;
+                int gap = 0;
+                for (int i = end; i < width && gap <= MAX_GAP; i++) {
+                    if (cells[base + i] != prev.cells[base + i]) {
+                        end = i + 1;
+                        gap = 0;
+                    } else {
+                        gap++;
+                    }
+                }
+                if (end < width && cells[base + end] == WIDE) {
+                    end++;
+                }
+
+                sb.append("\u001b[").append(row + 1).append(';').append(begin + 1).append('H');
+                for (int i = begin; i < end; i++) {
+                    if (cells[base + i] != WIDE) {
+                        sb.appendCodePoint(cells[base + i]);
+                    }
+                }
+
+                col = end;
+            }
+        }
+    }
+}
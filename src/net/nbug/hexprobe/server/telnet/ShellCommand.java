@@ -0,0 +1,31 @@
+package net.nbug.hexprobe.server.telnet;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * ShellCommand
+ *
+ * Marks a method as a shell command. The method may take an {@link EasyTerminal}
+ * and any number of String, int, long, double and boolean parameters, which are
+ * parsed from the whitespace separated argument. A trailing String parameter
+ * receives the rest of the line. A non-void return value is written as a line.
+ * Command names must be unique, ignoring case, and the method may only throw
+ * IOException and unchecked exceptions. Instance methods need a no-arg constructor.
+ *
+ * @author hexprobe <hexprobe@nbug.net>
+ *
+ * @license
+ * This code is hereby placed in the public domain.
+ *
+ */
+@Retention(RetentionPolicy.SOURCE)
+@Target(ElementType.METHOD)
+public @interface ShellCommand {
+    /**
+     * @return command name, defaults to the method name
+     */
+    String value() default "";
+}
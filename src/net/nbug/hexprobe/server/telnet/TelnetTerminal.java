@@ -5,7 +5,13 @@ import java.nio.charset.Charset;
 import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.Queue;
 import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import net.nbug.hexprobe.util.StringUtils;
 
@@ -19,6 +25,7 @@ import net.nbug.hexprobe.util.StringUtils;
  *
  */
 class TelnetTerminal implements EasyTerminal {
+    public static final int BEL = 0x07;
     public static final int BS = 0x08;
     public static final int CR = 0x0d;
     public static final int ESC = 0x1b;
@@ -44,10 +51,20 @@ class TelnetTerminal implements EasyTerminal {
     public static final int IAC_SE = 0xf0;
 
     public static final int CSI = 0x5b;
+    public static final int SS3 = 0x4f;
     public static final int CSI_FINAL_BEGIN = 0x40;
     public static final int CSI_FINAL_END = 0x7e;
 
+    public static final String PASTE_BEGIN = "[200~";
+    public static final byte[] PASTE_END = { ESC, CSI, '2', '0', '1', '~' };
+
+    public static final int DEFAULT_MAX_LINE_LENGTH = 4096;
+    public static final int DEFAULT_MAX_ESCAPE_LENGTH = 32;
+    public static final int DEFAULT_MAX_PASTE_LENGTH = 64 * 1024;
+
     private static final int TAB_SIZE = 8;
+    private static final int ESC_TIMEOUT = 50;
+    private static final int MAX_PENDING_MESSAGES = 1000;
 
     private static final byte NONE = 0;
     private static final byte FIRST = 1;
@@ -57,17 +74,30 @@ class TelnetTerminal implements EasyTerminal {
     private final DataOutputStream out;
     private final DataInputStream in;
     private final Map<String, Object> session;
+    private final StringBuilder pending = new StringBuilder();
+    private final Queue<String> messages = new ConcurrentLinkedQueue<String>();
+    private final AtomicInteger messageCount = new AtomicInteger();
+    private final AtomicBoolean draining = new AtomicBoolean();
+    private final StringBuilder lineText = new StringBuilder();
 
     private String prompt = "> ";
     private OnCommandLineListener onCommandLineListener = null;
+    private Executor executor = null;
+    private volatile boolean editing = false;
+    private boolean resizePending = false;
 
     private int x = 0;
     private int y = 0;
+    private int lineStartY = 0;
     private int width = 80;
     private int height = 24;
     private byte[] screen;
     private boolean echo = true;
     private boolean logMode = false;
+    private boolean bracketedPaste = true;
+    private int maxLineLength = DEFAULT_MAX_LINE_LENGTH;
+    private int maxEscapeLength = DEFAULT_MAX_ESCAPE_LENGTH;
+    private int maxPasteLength = DEFAULT_MAX_PASTE_LENGTH;
 
     public TelnetTerminal(DataOutputStream out, DataInputStream in, Charset encoding) {
         this.encoding = encoding;
@@ -94,13 +124,60 @@ class TelnetTerminal implements EasyTerminal {
         this.onCommandLineListener = onCommandLineListener;
     }
 
+    /**
+     * Sets the executor that draws posted messages while the session waits for input.
+     * Without one, messages are drawn the next time readLine() is called.
+     */
+    public void setExecutor(Executor executor) {
+        this.executor = executor;
+    }
+
     @Override
     public void setPrompt(String prompt) {
         this.prompt = prompt;
     }
 
+    /**
+     * Characters typed beyond this length are discarded and the bell is rung.
+     */
+    public void setMaxLineLength(int maxLineLength) {
+        this.maxLineLength = maxLineLength;
+    }
+
+    /**
+     * Escape sequences longer than this are abandoned and the remaining bytes are read as input.
+     */
+    public void setMaxEscapeLength(int maxEscapeLength) {
+        this.maxEscapeLength = maxEscapeLength;
+    }
+
+    /**
+     * Pasted bytes beyond this length are discarded.
+     */
+    public void setMaxPasteLength(int maxPasteLength) {
+        this.maxPasteLength = maxPasteLength;
+    }
+
+    /**
+     * Must be called before {@link #run()}.
+     */
+    public void setBracketedPaste(boolean bracketedPaste) {
+        this.bracketedPaste = bracketedPaste;
+    }
+
     @Override
     public void close() throws IOException {
+        if (bracketedPaste) {
+            synchronized (this) {
+                try {
+                    out.write(ESC);
+                    out.write("[?2004l".getBytes(encoding.name()));
+                    out.flush();
+                } catch (IOException e) {
+                    // Do nothing
+                }
+            }
+        }
         in.close();
     }
 
@@ -109,11 +186,26 @@ class TelnetTerminal implements EasyTerminal {
         return in;
     }
 
+    @Override
+    public OutputStream getOutputStream() {
+        return out;
+    }
+
     @Override
     public Charset getEncoding() {
         return encoding;
     }
 
+    @Override
+    public synchronized int getWidth() {
+        return width;
+    }
+
+    @Override
+    public synchronized int getHeight() {
+        return height;
+    }
+
     @Override
     public boolean isEcho() {
         return echo;
@@ -149,46 +241,72 @@ class TelnetTerminal implements EasyTerminal {
         session.put(key, value);
     }
 
+    /**
+     * Draws a message above the line being edited and redraws the prompt and the
+     * input typed so far. Safe to call from any thread; it never blocks on the socket.
+     * While a command is running, messages are held until input is read again.
+     */
+    @Override
+    public void postMessage(String message) {
+        if (messageCount.incrementAndGet() > MAX_PENDING_MESSAGES) {
+            messageCount.decrementAndGet();
+            return;
+        }
+        messages.offer(message);
+
+        Executor exec = executor;
+        if (exec != null && editing && draining.compareAndSet(false, true)) {
+            try {
+                exec.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        do {
+                            synchronized (TelnetTerminal.this) {
+                                try {
+                                    if (editing) {
+                                        renderMessages();
+                                    }
+                                } catch (IOException e) {
+                                    // The session thread notices the closed connection
+                                }
+                            }
+                            draining.set(false);
+                        } while (editing && !messages.isEmpty() && draining.compareAndSet(false, true));
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                draining.set(false);
+            }
+        }
+    }
+
     @Override
     public String readLine() throws IOException {
+        synchronized (this) {
+            editing = true;
+            renderMessages();
+        }
+
+        try {
+            return readInput();
+        } finally {
+            editing = false;
+        }
+    }
+
+    private String readInput() throws IOException {
         StringBuilder lineBuf = new StringBuilder();
         ByteArrayOutputStream buf = new ByteArrayOutputStream();
 
+        if (pending.length() > 0 && appendPending(lineBuf)) {
+            return lineBuf.toString();
+        }
+
         while (true) {
             int b = read(in);
 
             if (UTF8_FIRST_BEGIN <= b && b <= UTF8_FIRST_END && b != DEL) {
-                buf.reset();
-                buf.write(b);
-
-                int n;
-
-                if (b <= UTF8_FIRST_MAX_1) {
-                    n = 0;
-                } else if (b <= UTF8_FIRST_MAX_2) {
-                    n = 1;
-                } else if (b <= UTF8_FIRST_MAX_3) {
-                    n = 2;
-                } else if (b <= UTF8_FIRST_MAX_4) {
-                    n = 3;
-                } else if (b <= UTF8_FIRST_MAX_5) {
-                    n = 4;
-                } else if (b <= UTF8_FIRST_MAX_6) {
-                    n = 5;
-                } else {
-                    n = 0;
-                }
-
-                for (; n > 0; n--) {
-                    buf.write(read(in));
-                }
-
-                String tmp = buf.toString(encoding.name());
-                lineBuf.append(tmp);
-                if (echo) {
-                    write(tmp);
-                    flush();
-                }
+                appendInput(lineBuf, readChar(b, buf));
             } else {
                 switch (b) {
                 case CR:
@@ -201,48 +319,120 @@ class TelnetTerminal implements EasyTerminal {
                 case DEL:
                 case BS:
                     if (lineBuf.length() > 0) {
-                        backSpace();
-                        String tmp = biteTail(lineBuf.toString());
-                        lineBuf.setLength(0);
-                        lineBuf.append(tmp);
+                        eraseInput(lineBuf);
                     }
                     break;
 
                 case ESC:
-                    b = read(in);
-                    if (b == CSI) {
-                        do {
-                            b = read(in);
-                        } while (!(CSI_FINAL_BEGIN <= b && b <= CSI_FINAL_END));
+                    if (readEscapeSequence().equals(PASTE_BEGIN)) {
+                        readPaste();
+                        if (appendPending(lineBuf)) {
+                            return lineBuf.toString();
+                        }
                     }
                     break;
 
                 case IAC:
-                    b = read(in);
-                    switch (b) {
-                    case IAC_SB:
-                        b = read(in);
-                        if (b == IAC_NAWS) {
-                            short width = in.readShort();
-                            short height = in.readShort();
-                            setScreenSize(width, height);
-                        }
-                        break;
+                    readTelnetCommand(true);
+                    break;
+                }
+            }
+        }
+    }
+
+    /**
+     * Reads a single key press without echo, for full-screen commands.
+     * A window size change is applied without redrawing; the screen is
+     * cleared the next time the prompt is written.
+     *
+     * @return the typed character or escape sequence
+     */
+    @Override
+    public String readKey() throws IOException {
+        ByteArrayOutputStream buf = new ByteArrayOutputStream();
+
+        while (true) {
+            int b = read(in);
+
+            if (b == IAC) {
+                readTelnetCommand(false);
+            } else if (b == ESC) {
+                // Consume the whole sequence so that nothing is left for the next readLine()
+                String seq = readEscapeSequence();
+                if (seq.equals(PASTE_BEGIN)) {
+                    int length = pending.length();
+                    readPaste();
+                    pending.setLength(length);
+                }
+                return (char) ESC + seq;
+            } else if (UTF8_FIRST_BEGIN <= b && b <= UTF8_FIRST_END && b != DEL) {
+                return readChar(b, buf);
+            } else {
+                return String.valueOf((char) b);
+            }
+        }
+    }
 
-                    case IAC_SE:
-                        break;
+    private String readChar(int b, ByteArrayOutputStream buf) throws IOException {
+        buf.reset();
+        buf.write(b);
+
+        for (int n = trailingBytes(b); n > 0; n--) {
+            buf.write(read(in));
+        }
 
-                    default:
-                        read(in);
+        return buf.toString(encoding.name());
+    }
+
+    /**
+     * @return number of continuation bytes following the given first byte
+     */
+    private static int trailingBytes(int b) {
+        if (b <= UTF8_FIRST_MAX_1) {
+            return 0;
+        } else if (b <= UTF8_FIRST_MAX_2) {
+            return 1;
+        } else if (b <= UTF8_FIRST_MAX_3) {
+            return 2;
+        } else if (b <= UTF8_FIRST_MAX_4) {
+            return 3;
+        } else if (b <= UTF8_FIRST_MAX_5) {
+            return 4;
+        } else if (b <= UTF8_FIRST_MAX_6) {
+            return 5;
+        } else {
+            return 0;
+        }
+    }
+
+    private void readTelnetCommand(boolean redraw) throws IOException {
+        int b = read(in);
+        switch (b) {
+        case IAC_SB:
+            b = read(in);
+            if (b == IAC_NAWS) {
+                short width = in.readShort();
+                short height = in.readShort();
+                if (redraw) {
+                    setScreenSize(width, height);
+                } else {
+                    synchronized (this) {
+                        resizePending |= resize(width, height);
                     }
-                    break;
                 }
             }
+            break;
+
+        case IAC_SE:
+            break;
+
+        default:
+            read(in);
         }
     }
 
     @Override
-    public void write(String s) throws IOException {
+    public synchronized void write(String s) throws IOException {
         char hi = 0;
         char lo;
         int w;
@@ -262,11 +452,15 @@ class TelnetTerminal implements EasyTerminal {
             case '\r':
                 x = 0;
                 out.write(String.valueOf(hi).getBytes(encoding.name()));
+                lineText.setLength(0);
+                lineStartY = y;
                 break;
 
             case '\n':
                 out.write(String.valueOf(hi).getBytes(encoding.name()));
                 newLine(false);
+                lineText.setLength(0);
+                lineStartY = y;
                 break;
 
             case '\t':
@@ -278,6 +472,7 @@ class TelnetTerminal implements EasyTerminal {
                 }
 
                 out.write(String.valueOf(hi).getBytes(encoding.name()));
+                lineText.append(hi);
 
                 if (x == width) {
                     if (logMode) {
@@ -321,8 +516,10 @@ class TelnetTerminal implements EasyTerminal {
 
                 if (lo > 0) {
                     out.write(String.valueOf(new char[]{hi, lo}).getBytes(encoding.name()));
+                    lineText.append(hi).append(lo);
                 } else {
                     out.write(String.valueOf(hi).getBytes(encoding.name()));
+                    lineText.append(hi);
                 }
 
                 if (x == width) {
@@ -341,22 +538,223 @@ class TelnetTerminal implements EasyTerminal {
     }
 
     @Override
-    public void writeLine(String s) throws IOException {
+    public synchronized void writeLine(String s) throws IOException {
         write(s);
         write("\r\n");
     }
 
     @Override
-    public void flush() throws IOException {
+    public synchronized void flush() throws IOException {
         out.flush();
     }
 
-    private void writePrompt() throws IOException {
+    private synchronized void appendInput(StringBuilder lineBuf, String s) throws IOException {
+        int room = maxLineLength - lineBuf.length();
+        if (s.length() > room) {
+            if (room > 0 && Character.isHighSurrogate(s.charAt(room - 1))) {
+                room--;
+            }
+            s = s.substring(0, Math.max(room, 0));
+            out.write(BEL);
+        }
+
+        lineBuf.append(s);
+        if (echo) {
+            write(s);
+        }
+        flush();
+    }
+
+    /**
+     * Moves pasted text up to the next line break into lineBuf.
+     *
+     * @return true if a whole line has been read
+     */
+    private synchronized boolean appendPending(StringBuilder lineBuf) throws IOException {
+        int i = pending.indexOf("\r");
+        boolean eol = i >= 0;
+        if (!eol) {
+            i = pending.length();
+        }
+
+        appendInput(lineBuf, pending.substring(0, i));
+        pending.delete(0, eol ? i + 1 : i);
+
+        if (eol && echo) {
+            writeLine("");
+            flush();
+        }
+        return eol;
+    }
+
+    /**
+     * Reads the rest of an escape sequence. At most maxEscapeLength bytes are consumed.
+     * If nothing follows the ESC within ESC_TIMEOUT ms, it is taken as a lone Esc key.
+     *
+     * @return the sequence without the leading ESC, or an empty string for a lone Esc
+     */
+    private String readEscapeSequence() throws IOException {
+        StringBuilder seq = new StringBuilder();
+
+        if (!waitForInput(ESC_TIMEOUT)) {
+            return "";
+        }
+
+        int b = read(in);
+        seq.append((char) b);
+        if (b == CSI) {
+            for (int n = 0; n < maxEscapeLength; n++) {
+                b = read(in);
+                seq.append((char) b);
+                if (CSI_FINAL_BEGIN <= b && b <= CSI_FINAL_END) {
+                    break;
+                }
+            }
+        } else if (b == SS3) {
+            seq.append((char) read(in));
+        }
+        return seq.toString();
+    }
+
+    private boolean waitForInput(long timeout) throws IOException {
+        long deadline = System.currentTimeMillis() + timeout;
+        while (in.available() == 0) {
+            if (System.currentTimeMillis() >= deadline) {
+                return false;
+            }
+            try {
+                Thread.sleep(1);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Reads pasted bytes up to the end-of-paste sequence into the pending buffer.
+     * Bytes beyond maxPasteLength are discarded, along with a character cut by the limit.
+     */
+    private void readPaste() throws IOException {
+        ByteArrayOutputStream buf = new ByteArrayOutputStream();
+        boolean truncated = false;
+        int matched = 0;
+
+        while (matched < PASTE_END.length) {
+            int b = read(in);
+            if (b == PASTE_END[matched]) {
+                matched++;
+                continue;
+            }
+
+            int n = Math.min(matched, maxPasteLength - buf.size());
+            buf.write(PASTE_END, 0, n);
+            truncated |= n < matched;
+            if (b == ESC) {
+                matched = 1;
+            } else {
+                matched = 0;
+                if (buf.size() < maxPasteLength) {
+                    buf.write(b);
+                } else {
+                    truncated = true;
+                }
+            }
+        }
+
+        byte[] bytes = buf.toByteArray();
+        int length = bytes.length;
+        if (truncated) {
+            // Drop a multi-byte character whose tail was cut off
+            int i = length - 1;
+            while (i >= 0 && length - i <= 5 && (bytes[i] & 0xc0) == 0x80) {
+                i--;
+            }
+            if (i >= 0 && i + 1 + trailingBytes(bytes[i] & 0xff) > length) {
+                length = i;
+            }
+        }
+
+        String text = new String(bytes, 0, length, encoding.name());
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (c == '\r') {
+                pending.append('\r');
+                if (i + 1 < text.length() && text.charAt(i + 1) == '\n') {
+                    i++;
+                }
+            } else if (c == '\n') {
+                pending.append('\r');
+            } else if (c == '\t') {
+                pending.append(' ');
+            } else if (c >= ' ' && c != DEL) {
+                pending.append(c);
+            }
+        }
+    }
+
+    private synchronized void eraseInput(StringBuilder lineBuf) throws IOException {
+        backSpace();
+
+        String tmp = biteTail(lineBuf.toString());
+        lineBuf.setLength(0);
+        lineBuf.append(tmp);
+
+        if (echo) {
+            tmp = biteTail(lineText.toString());
+            lineText.setLength(0);
+            lineText.append(tmp);
+        }
+    }
+
+    /**
+     * Erases the line being edited, writes the queued messages in its place and redraws it below them.
+     */
+    private void renderMessages() throws IOException {
+        if (messages.isEmpty()) {
+            return;
+        }
+
+        String saved = lineText.toString();
+
+        moveRelative(-x, lineStartY - y);
+        out.write(CR);
+        out.write(ESC);
+        out.write("[J".getBytes(encoding.name()));
+        x = 0;
+        y = lineStartY;
+        Arrays.fill(screen, y * width, screen.length, NONE);
+        lineText.setLength(0);
+
+        String message;
+        while ((message = messages.poll()) != null) {
+            messageCount.decrementAndGet();
+            for (String line : message.split("\r?\n")) {
+                writeLine(line);
+            }
+        }
+
+        write(saved);
+        flush();
+    }
+
+    private synchronized void writePrompt() throws IOException {
+        if (resizePending) {
+            resizePending = false;
+            clearScreen();
+            return;
+        }
+
         write(prompt);
         flush();
     }
 
-    private void writeInitialSequence() throws IOException {
+    private synchronized void writeInitialSequence() throws IOException {
+        if (bracketedPaste) {
+            out.write(ESC);
+            out.write("[?2004h".getBytes(encoding.name()));
+        }
         writeBytes(out, IAC, IAC_WILL, IAC_ECHO);
         writeBytes(out, IAC, IAC_DO, IAC_SGA);
         writeBytes(out, IAC, IAC_WILL, IAC_SGA);
@@ -365,15 +763,29 @@ class TelnetTerminal implements EasyTerminal {
         writeBytes(out, IAC, IAC_DO, IAC_NAWS);
     }
     
-    private void setScreenSize(int width, int height) throws IOException {
+    private synchronized void setScreenSize(int width, int height) throws IOException {
+        if (resize(width, height)) {
+            clearScreen();
+        }
+    }
+
+    /**
+     * Reallocates the screen and resets the cursor to the top left, so that
+     * writes are safe before the screen is actually cleared.
+     */
+    private boolean resize(int width, int height) {
         if (this.width != width || this.height != height) {
             this.width = width;
             this.height = height;
 
             screen = new byte[height * width];
-
-            clearScreen();
+            x = 0;
+            y = 0;
+            lineStartY = 0;
+            lineText.setLength(0);
+            return true;
         }
+        return false;
     }
 
     private void backSpace() throws IOException {
@@ -442,6 +854,7 @@ class TelnetTerminal implements EasyTerminal {
             }
 
             Arrays.fill(screen, (height - 1) * width, screen.length, NONE);
+            lineStartY = Math.max(lineStartY - 1, 0);
 
             if (move) {
                 out.write(ESC);
@@ -458,6 +871,8 @@ class TelnetTerminal implements EasyTerminal {
     private void clearScreen() throws IOException {
         x = 0;
         y = 0;
+        lineStartY = 0;
+        lineText.setLength(0);
 
         out.write(ESC);
         out.write("[1;1H".getBytes(encoding.name()));
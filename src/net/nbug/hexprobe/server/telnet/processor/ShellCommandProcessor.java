@@ -0,0 +1,353 @@
+package net.nbug.hexprobe.server.telnet.processor;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+
+import javax.annotation.processing.AbstractProcessor;
+import javax.annotation.processing.RoundEnvironment;
+import javax.annotation.processing.SupportedAnnotationTypes;
+import javax.lang.model.SourceVersion;
+import javax.lang.model.element.Element;
+import javax.lang.model.element.ExecutableElement;
+import javax.lang.model.element.Modifier;
+import javax.lang.model.element.TypeElement;
+import javax.lang.model.element.VariableElement;
+import javax.lang.model.type.TypeKind;
+import javax.lang.model.type.TypeMirror;
+import javax.lang.model.util.ElementFilter;
+import javax.lang.model.util.Elements;
+import javax.lang.model.util.Types;
+import javax.tools.Diagnostic;
+import javax.tools.FileObject;
+import javax.tools.StandardLocation;
+
+import net.nbug.hexprobe.server.telnet.ShellCommand;
+
+/**
+ * ShellCommandProcessor
+ *
+ * Generates a reflection-free CommandProvider for every class declaring
+ * {@link ShellCommand} methods and registers it in META-INF/services.
+ *
+ * @author hexprobe <hexprobe@nbug.net>
+ *
+ * @license
+ * This code is hereby placed in the public domain.
+ *
+ */
+@SupportedAnnotationTypes("net.nbug.hexprobe.server.telnet.ShellCommand")
+public class ShellCommandProcessor extends AbstractProcessor {
+    private static final String PROVIDER = "net.nbug.hexprobe.server.telnet.CommandProvider";
+    private static final String TERMINAL = "net.nbug.hexprobe.server.telnet.EasyTerminal";
+    private static final String SUFFIX = "$ShellCommands";
+
+    private final List<String> providers = new ArrayList<String>();
+    private final Map<String, String> names = new HashMap<String, String>();
+
+    @Override
+    public SourceVersion getSupportedSourceVersion() {
+        return SourceVersion.latestSupported();
+    }
+
+    @Override
+    public boolean process(Set<? extends TypeElement> annotations, RoundEnvironment roundEnv) {
+        Map<TypeElement, List<ExecutableElement>> classes = new LinkedHashMap<TypeElement, List<ExecutableElement>>();
+
+        for (Element e : roundEnv.getElementsAnnotatedWith(ShellCommand.class)) {
+            ExecutableElement method = (ExecutableElement) e;
+            TypeElement type = (TypeElement) method.getEnclosingElement();
+            if (validate(type, method) && register(type, method)) {
+                List<ExecutableElement> methods = classes.get(type);
+                if (methods == null) {
+                    methods = new ArrayList<ExecutableElement>();
+                    classes.put(type, methods);
+                }
+                methods.add(method);
+            }
+        }
+
+        for (Map.Entry<TypeElement, List<ExecutableElement>> entry : classes.entrySet()) {
+            try {
+                providers.add(generate(entry.getKey(), entry.getValue()));
+            } catch (IOException ex) {
+                error(entry.getKey(), "Failed to generate command provider: " + ex);
+            }
+        }
+
+        if (roundEnv.processingOver() && !providers.isEmpty()) {
+            try {
+                writeServices();
+            } catch (IOException ex) {
+                processingEnv.getMessager().printMessage(Diagnostic.Kind.ERROR, "Failed to write services: " + ex);
+            }
+        }
+
+        return true;
+    }
+
+    private boolean validate(TypeElement type, ExecutableElement method) {
+        boolean valid = true;
+
+        if (!method.getModifiers().contains(Modifier.PUBLIC) || !type.getModifiers().contains(Modifier.PUBLIC)) {
+            error(method, "@ShellCommand method and its class must be public");
+            valid = false;
+        }
+        if (type.getNestingKind().isNested() && !type.getModifiers().contains(Modifier.STATIC)) {
+            error(method, "@ShellCommand method must not be declared in an inner class");
+            valid = false;
+        }
+        if (!method.getModifiers().contains(Modifier.STATIC) && type.getModifiers().contains(Modifier.ABSTRACT)) {
+            error(method, "@ShellCommand method in an abstract class must be static");
+            valid = false;
+        }
+
+        if (!method.getModifiers().contains(Modifier.STATIC) && !type.getModifiers().contains(Modifier.ABSTRACT)
+                && !hasDefaultConstructor(type)) {
+            error(method, "@ShellCommand method must be static, or its class must have a non-private no-arg constructor");
+            valid = false;
+        }
+
+        List<? extends VariableElement> params = method.getParameters();
+        for (VariableElement param : params) {
+            if (parseCall(param.asType(), false) == null && !isTerminal(param.asType())) {
+                error(param, "Unsupported @ShellCommand parameter type: " + param.asType());
+                valid = false;
+            }
+        }
+
+        Elements elements = processingEnv.getElementUtils();
+        Types types = processingEnv.getTypeUtils();
+        TypeMirror[] allowed = {
+            elements.getTypeElement("java.io.IOException").asType(),
+            elements.getTypeElement("java.lang.RuntimeException").asType(),
+            elements.getTypeElement("java.lang.Error").asType()
+        };
+        for (TypeMirror thrown : method.getThrownTypes()) {
+            boolean ok = false;
+            for (TypeMirror t : allowed) {
+                ok |= types.isSubtype(thrown, t);
+            }
+            if (!ok) {
+                error(method, "@ShellCommand method must not throw checked exceptions other than IOException: " + thrown);
+                valid = false;
+            }
+        }
+
+        return valid;
+    }
+
+    /**
+     * Records the command name, reporting an error if another method already uses it.
+     * Names are compared the way EasyShellServer looks them up, ignoring case.
+     */
+    private boolean register(TypeElement type, ExecutableElement method) {
+        String name = commandName(method);
+        String owner = type.getQualifiedName() + "." + method.getSimpleName() + "()";
+        String previous = names.get(name.toLowerCase(Locale.getDefault()));
+        if (previous != null) {
+            error(method, "Duplicate @ShellCommand name \"" + name + "\", already declared by " + previous);
+            return false;
+        }
+        names.put(name.toLowerCase(Locale.getDefault()), owner);
+        return true;
+    }
+
+    private boolean hasDefaultConstructor(TypeElement type) {
+        for (ExecutableElement c : ElementFilter.constructorsIn(type.getEnclosedElements())) {
+            if (c.getParameters().isEmpty() && !c.getModifiers().contains(Modifier.PRIVATE)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private String generate(TypeElement type, List<ExecutableElement> methods) throws IOException {
+        String pkg = processingEnv.getElementUtils().getPackageOf(type).getQualifiedName().toString();
+        String binaryName = processingEnv.getElementUtils().getBinaryName(type).toString();
+        String simpleName = (pkg.isEmpty() ? binaryName : binaryName.substring(pkg.length() + 1)) + SUFFIX;
+        String qualifiedName = pkg.isEmpty() ? simpleName : pkg + "." + simpleName;
+        String target = type.getQualifiedName().toString();
+
+        boolean hasInstanceMethod = false;
+        for (ExecutableElement method : methods) {
+            if (!method.getModifiers().contains(Modifier.STATIC)) {
+                hasInstanceMethod = true;
+            }
+        }
+
+        StringBuilder sb = new StringBuilder();
+        if (!pkg.isEmpty()) {
+            sb.append("package ").append(pkg).append(";\n\n");
+        }
+        sb.append("// Generated by ").append(getClass().getName()).append(". Do not edit.\n");
+        sb.append("public final class ").append(simpleName).append(" implements ").append(PROVIDER).append(" {\n");
+
+        sb.append("    private static final String[] NAMES = {");
+        for (int i = 0; i < methods.size(); i++) {
+            sb.append(i == 0 ? " " : ", ").append(literal(commandName(methods.get(i))));
+        }
+        sb.append(" };\n\n");
+
+        if (hasInstanceMethod) {
+            sb.append("    private ").append(target).append(" target = null;\n\n");
+            sb.append("    private synchronized ").append(target).append(" target() {\n");
+            sb.append("        if (target == null) {\n");
+            sb.append("            target = new ").append(target).append("();\n");
+            sb.append("        }\n");
+            sb.append("        return target;\n");
+            sb.append("    }\n\n");
+        }
+
+        sb.append("    @Override\n");
+        sb.append("    public String[] getCommandNames() {\n");
+        sb.append("        return NAMES.clone();\n");
+        sb.append("    }\n\n");
+
+        sb.append("    @Override\n");
+        sb.append("    public void execute(String name, String argument, ").append(TERMINAL)
+            .append(" terminal) throws java.io.IOException {\n");
+        for (int i = 0; i < methods.size(); i++) {
+            sb.append(i == 0 ? "        if (" : " else if (");
+            sb.append("name.equals(NAMES[").append(i).append("])) {\n");
+            generateCall(sb, methods.get(i), target);
+            sb.append("        }");
+        }
+        sb.append("\n    }\n");
+        sb.append("}\n");
+
+        Writer w = processingEnv.getFiler().createSourceFile(qualifiedName, type).openWriter();
+        try {
+            w.write(sb.toString());
+        } finally {
+            w.close();
+        }
+
+        return qualifiedName;
+    }
+
+    private void generateCall(StringBuilder sb, ExecutableElement method, String target) {
+        List<? extends VariableElement> params = method.getParameters();
+        int last = -1;
+        for (int i = 0; i < params.size(); i++) {
+            if (!isTerminal(params.get(i).asType())) {
+                last = i;
+            }
+        }
+
+        StringBuilder usage = new StringBuilder(commandName(method));
+        List<String> args = new ArrayList<String>();
+
+        sb.append("            net.nbug.hexprobe.server.telnet.ArgumentParser p =\n");
+        sb.append("                new net.nbug.hexprobe.server.telnet.ArgumentParser(argument);\n");
+        for (int i = 0; i < params.size(); i++) {
+            TypeMirror t = params.get(i).asType();
+            if (isTerminal(t)) {
+                args.add("terminal");
+            } else {
+                sb.append("            ").append(t).append(" a").append(i).append(";\n");
+                args.add("a" + i);
+                usage.append(" <").append(params.get(i).getSimpleName()).append('>');
+            }
+        }
+
+        sb.append("            try {\n");
+        for (int i = 0; i < params.size(); i++) {
+            TypeMirror t = params.get(i).asType();
+            if (!isTerminal(t)) {
+                sb.append("                a").append(i).append(" = p.").append(parseCall(t, i == last)).append(";\n");
+            }
+        }
+        sb.append("                p.end();\n");
+        sb.append("            } catch (IllegalArgumentException e) {\n");
+        sb.append("                terminal.writeLine(").append(literal("Usage: " + usage)).append(");\n");
+        sb.append("                terminal.flush();\n");
+        sb.append("                return;\n");
+        sb.append("            }\n");
+
+        String receiver = method.getModifiers().contains(Modifier.STATIC) ? target : "target()";
+        StringBuilder call = new StringBuilder();
+        call.append(receiver).append('.').append(method.getSimpleName()).append('(');
+        for (int i = 0; i < args.size(); i++) {
+            call.append(i == 0 ? "" : ", ").append(args.get(i));
+        }
+        call.append(')');
+
+        if (method.getReturnType().getKind() == TypeKind.VOID) {
+            sb.append("            ").append(call).append(";\n");
+        } else {
+            sb.append("            Object result = ").append(call).append(";\n");
+            sb.append("            if (result != null) {\n");
+            sb.append("                terminal.writeLine(String.valueOf(result));\n");
+            sb.append("                terminal.flush();\n");
+            sb.append("            }\n");
+        }
+    }
+
+    private String parseCall(TypeMirror t, boolean last) {
+        switch (t.getKind()) {
+        case INT:
+            return "nextInt()";
+        case LONG:
+            return "nextLong()";
+        case DOUBLE:
+            return "nextDouble()";
+        case BOOLEAN:
+            return "nextBoolean()";
+        case DECLARED:
+            if (t.toString().equals("java.lang.String")) {
+                return last ? "rest()" : "nextString()";
+            }
+            return null;
+        default:
+            return null;
+        }
+    }
+
+    private boolean isTerminal(TypeMirror t) {
+        return t.getKind() == TypeKind.DECLARED && t.toString().equals(TERMINAL);
+    }
+
+    private void writeServices() throws IOException {
+        FileObject file = processingEnv.getFiler().createResource(
+            StandardLocation.CLASS_OUTPUT, "", "META-INF/services/" + PROVIDER);
+        Writer w = file.openWriter();
+        try {
+            for (String provider : providers) {
+                w.write(provider);
+                w.write("\n");
+            }
+        } finally {
+            w.close();
+        }
+    }
+
+    private void error(Element e, String msg) {
+        processingEnv.getMessager().printMessage(Diagnostic.Kind.ERROR, msg, e);
+    }
+
+    private static String commandName(ExecutableElement method) {
+        String name = method.getAnnotation(ShellCommand.class).value();
+        return name.isEmpty() ? method.getSimpleName().toString() : name;
+    }
+
+    private static String literal(String s) {
+        StringBuilder sb = new StringBuilder("\"");
+        for (char c : s.toCharArray()) {
+            if (c == '"' || c == '\\') {
+                sb.append('\\').append(c);
+            } else if (c < ' ' || c > '~') {
+                sb.append(String.format("\\u%04x", (int) c));
+            } else {
+                sb.append(c);
+            }
+        }
+        return sb.append('"').toString();
+    }
+}